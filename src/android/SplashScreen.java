@@ -66,7 +66,12 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class SplashScreen extends CordovaPlugin {
     private static final String LOG_TAG = "SplashScreen";
@@ -74,14 +79,29 @@ public class SplashScreen extends CordovaPlugin {
     // Enable functionality only if running on 4.x.x.
     private static final boolean HAS_BUILT_IN_SPLASH_SCREEN = Integer.valueOf(CordovaWebView.CORDOVA_VERSION.split("\\.")[0]) < 4;
     private static final int DEFAULT_SPLASHSCREEN_DURATION = 3000;
-    private static Dialog splashDialog;
-    private static ProgressDialog spinnerDialog;
-    private static boolean firstShow = true;
-    private static boolean lastHideAfterDelay; // https://issues.apache.org/jira/browse/CB-9094
+    private static final AtomicBoolean firstShow = new AtomicBoolean(true);
+
+    /**
+     * The last published splash assets, shared by every activity of the process.
+     * Refreshes replace it with a new snapshot in one step; readers never block.
+     */
+    private static final AtomicReference<SplashAssets> currentAssets = new AtomicReference<SplashAssets>();
+
+    /**
+     * Serializes refresh threads started by different activities.
+     */
+    private static final Object REFRESH_LOCK = new Object();
+
+    // Dialogs belong to this plugin's activity and are only touched on the UI thread.
+    private Dialog splashDialog;
+    private ProgressDialog spinnerDialog;
+    private volatile boolean lastHideAfterDelay; // https://issues.apache.org/jira/browse/CB-9094
+    // Set while the first splash waits for the saved image to be decoded off the UI thread.
+    private boolean pendingShow;
 
     private static final String PLUGIN_FOLDER = "cordova-plugin-splashscreen";
 
-    private static final String SPLASH_NAME = "splash.png";
+    private static final String TMP_SUFFIX = ".tmp";
 
     private static final String SPLASH_JSON_NAME = "splash-android.json";
 
@@ -92,13 +112,6 @@ public class SplashScreen extends CordovaPlugin {
 
     private Drawable screenDrawable = null;
 
-
-    private JsonDownloader jsonDownloader;
-
-    private String densityName = null;
-
-    private Context context;
-
     /**
      * Remember last device orientation to detect orientation changes.
      */
@@ -114,89 +127,167 @@ public class SplashScreen extends CordovaPlugin {
     }
 
 
-    private Bitmap downloadSplashImage(String url) {
+    private static Bitmap downloadSplashImage(String url) {
         if (url == null) {
             return null;
         }
         Bitmap bitmap = null;
         try {
             InputStream is = new URL(url).openStream();
-            bitmap = BitmapFactory.decodeStream(is);
+            try {
+                bitmap = BitmapFactory.decodeStream(is);
+            } finally {
+                is.close();
+            }
         } catch (IOException e) {
             e.printStackTrace();
         }
         return bitmap;
     }
 
-    private void saveSplashImage(Bitmap bitmap) throws IOException {
-        String absPath = context.getFilesDir().getAbsolutePath();
-        String pluginPath = getPath(absPath, PLUGIN_FOLDER);
-        File pluginFile = new File(pluginPath);
-        if (!pluginFile.exists()) {
-            pluginFile.mkdirs();
-        }
-        File splashFile = new File(pluginPath, SPLASH_NAME);
-        if (!splashFile.exists()) {
-            splashFile.createNewFile();
+    /**
+     * 将图片写入临时文件，由调用方在发布时重命名为目标文件
+     *
+     * @param bitmap  Bitmap
+     * @param tmpFile 临时文件
+     * @throws IOException
+     */
+    private static void saveSplashImage(Bitmap bitmap, File tmpFile) throws IOException {
+        FileOutputStream fos = new FileOutputStream(tmpFile);
+        BufferedOutputStream bos = new BufferedOutputStream(fos);
+        try {
+            bitmap.compress(Bitmap.CompressFormat.PNG, 100, bos);
+            bos.flush();
+            fos.getFD().sync();
+        } finally {
+            bos.close();
         }
-
-        BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(splashFile));
-        bitmap.compress(Bitmap.CompressFormat.PNG, 100, bos);
-
-        bos.flush();
-        bos.close();
     }
 
     /**
-     * 保存splash-android.json文件
+     * 保存splash-android.json文件，写临时文件后原子重命名，作为一次刷新的提交点
      *
+     * @param context    Context
      * @param splashJson String
      * @throws IOException
      */
-    private void saveSplashFile(String splashJson) throws IOException {
-        FileOutputStream fos = context.openFileOutput(SPLASH_JSON_NAME, Context.MODE_PRIVATE);
-        fos.write(splashJson.getBytes());
-        fos.flush();
-        fos.close();
+    private static void saveSplashFile(Context context, String splashJson) throws IOException {
+        File jsonFile = new File(context.getFilesDir(), SPLASH_JSON_NAME);
+        File tmpFile = new File(context.getFilesDir(), SPLASH_JSON_NAME + TMP_SUFFIX);
+        FileOutputStream fos = new FileOutputStream(tmpFile);
+        try {
+            fos.write(splashJson.getBytes());
+            fos.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        renameFile(tmpFile, jsonFile);
+    }
+
+    private static void renameFile(File from, File to) throws IOException {
+        if (!from.renameTo(to)) {
+            from.delete();
+            throw new IOException("Failed to rename " + from + " to " + to);
+        }
     }
 
     /**
      * 读取splash-android.json文件
      *
+     * @param context Context
      * @return String
      * @throws IOException
      */
-    private String getSplashFile() throws IOException {
+    private static String getSplashFile(Context context) throws IOException {
         FileInputStream fis = context.openFileInput(SPLASH_JSON_NAME);//获得输入流
         //用来获得内存缓冲区的数据，转换成字节数组
         ByteArrayOutputStream stream = new ByteArrayOutputStream();
         byte[] buffer = new byte[1024];
         int length;
-        while ((length = fis.read(buffer)) != -1) {
-            stream.write(buffer, 0, length);//获取内存缓冲区中的数据
+        try {
+            while ((length = fis.read(buffer)) != -1) {
+                stream.write(buffer, 0, length);//获取内存缓冲区中的数据
+            }
+        } finally {
+            fis.close();
         }
-        stream.close(); //关闭
-        fis.close();
         return stream.toString();
+    }
+
+    /**
+     * 图片文件名取图片地址的MD5，新图片不会覆盖正在使用的旧图片
+     *
+     * @param imgUrl 图片地址
+     * @return String 文件名
+     */
+    private static String getSplashImageName(String imgUrl) {
+        byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("MD5").digest(imgUrl.getBytes(Charset.forName("UTF-8")));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        StringBuilder builder = new StringBuilder("splash-");
+        for (byte b : digest) {
+            builder.append(String.format("%02x", b & 0xff));
+        }
+        return builder.append(".png").toString();
+    }
 
+    private static File getPluginDir(Context context) {
+        return new File(getPath(context.getFilesDir().getAbsolutePath(), PLUGIN_FOLDER));
     }
 
     /**
-     * 比较两个json文件的对应的选项是否有不同
+     * 从磁盘上已提交的splash-android.json构建快照。图片不存在时快照仍会返回，
+     * 由refreshSplashAssets判断为需要重新下载。
      *
-     * @param newFile JsonNode
-     * @param oldFile JsonNode
-     * @return boolean: 不同返回true,否则返回false
+     * @param context     Context
+     * @param densityName 待取字段
+     * @return SplashAssets 没有已保存的文件时返回null
      */
-    private boolean diffSplashFile(JsonNode newFile, JsonNode oldFile) {
-        boolean flag = false;
-        String newImgUrl = getDensityUrl(newFile, densityName);
-        String oldImgUrl = getDensityUrl(oldFile, densityName);
-        if (oldImgUrl != null && !oldImgUrl.equals(newImgUrl)) {
-            flag = true;
+    private static SplashAssets loadSplashAssets(Context context, String densityName) {
+        String imgUrl;
+        try {
+            String jsonContent = getSplashFile(context);
+            imgUrl = getDensityUrl(new ObjectMapper().readTree(jsonContent), densityName);
+        } catch (IOException e) {
+            return null;
+        }
+        if (imgUrl == null) {
+            return null;
         }
+        File imageFile = new File(getPluginDir(context), getSplashImageName(imgUrl));
+        return new SplashAssets(imgUrl, imageFile.getAbsolutePath());
+    }
 
-        return flag;
+    /**
+     * 取得当前快照（进程内还没有时从磁盘加载并发布）并解码图片，不能在UI线程调用
+     *
+     * @param context     Context
+     * @param densityName String
+     * @return Drawable 没有可用的图片时返回null
+     */
+    private static Drawable loadSplashDrawable(Context context, String densityName) {
+        SplashAssets assets = currentAssets.get();
+        if (assets == null) {
+            currentAssets.compareAndSet(null, loadSplashAssets(context, densityName));
+            assets = currentAssets.get();
+        }
+        // 解码前图片可能已被新的刷新删除，此时改用新发布的快照
+        while (assets != null) {
+            Bitmap bitmap = BitmapFactory.decodeFile(assets.imagePath);
+            if (bitmap != null) {
+                return new BitmapDrawable(context.getResources(), bitmap);
+            }
+            SplashAssets latest = currentAssets.get();
+            if (latest == assets) {
+                return null;
+            }
+            assets = latest;
+        }
+        return null;
     }
 
     /**
@@ -217,48 +308,97 @@ public class SplashScreen extends CordovaPlugin {
         }
     }
 
+    private static boolean needsRefresh(SplashAssets current, String imgUrl) {
+        return current == null || !current.isComplete() || !imgUrl.equals(current.imageUrl);
+    }
+
     /**
-     * 走一个线程，用于处理耗时操作，这里用于下载图片
+     * 下载新的json和图片，图片落盘后才保存json并发布新的快照。
+     * 任何一步失败都不会改动已保存的json，下次启动会重新尝试。
+     * 下载在锁外进行，REFRESH_LOCK只保护比较、提交和清理。
      *
-     * @param jsonUrl String
+     * @param context     Context
+     * @param jsonUrl     String
+     * @param densityName String
+     * @throws Exception
      */
-    private void runThread(final String jsonUrl) {
-        new Thread(new Runnable() {
-
-            @Override
-            public void run() {
-                try {
-                    if (densityName == null) {
-                        densityName = getDensityName(context);
-                        Log.d(LOG_TAG, "run: densityName=" + densityName);
-                    }
-                    if (jsonDownloader == null) {
-                        jsonDownloader = new JsonDownloader(jsonUrl, null);
-                    }
+    private static void refreshSplashAssets(Context context, String jsonUrl, String densityName) throws Exception {
+        String jsonContent = new JsonDownloader(jsonUrl, null).downloadJson();
+        JsonNode json = new ObjectMapper().readTree(jsonContent);
+        String imgUrl = getDensityUrl(json, densityName);
+        if (imgUrl == null) {
+            return;
+        }
 
-                    String jsonContent = jsonDownloader.downloadJson();
+        boolean flag = needsRefresh(currentAssets.get(), imgUrl);
+        Log.d(LOG_TAG, "refreshSplashAssets flag: " + flag);
+        if (!flag) {
+            return;
+        }
 
-                    JsonNode json = new ObjectMapper().readTree(jsonContent);
-                    boolean flag = true;
-                    try {
-                        String oldJson = getSplashFile();
-                        JsonNode oldJsonNode = new ObjectMapper().readTree(oldJson);
-                        flag = diffSplashFile(json, oldJsonNode);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
+        Bitmap bitmap = downloadSplashImage(imgUrl);
+        if (bitmap == null) {
+            Log.w(LOG_TAG, "Failed to download splash image: " + imgUrl);
+            return;
+        }
 
-                    Log.d(LOG_TAG, "pluginInitialize flag: " + flag);
+        File pluginDir = getPluginDir(context);
+        if (!pluginDir.exists()) {
+            pluginDir.mkdirs();
+        }
+        File tmpFile = File.createTempFile("splash-", TMP_SUFFIX, pluginDir);
+        try {
+            saveSplashImage(bitmap, tmpFile);
 
-                    if (flag) {
-                        saveSplashFile(jsonContent);
-                        String imgUrl = SplashScreen.getDensityUrl(json, densityName);
-                        Bitmap bitmap = downloadSplashImage(imgUrl);
-                        if (bitmap != null) {
-                            saveSplashImage(bitmap);
+            synchronized (REFRESH_LOCK) {
+                // 其他线程可能已经发布了同一张图片
+                if (!needsRefresh(currentAssets.get(), imgUrl)) {
+                    return;
+                }
+                File imageFile = new File(pluginDir, getSplashImageName(imgUrl));
+                renameFile(tmpFile, imageFile);
+                saveSplashFile(context, jsonContent);
+                currentAssets.set(new SplashAssets(imgUrl, imageFile.getAbsolutePath()));
+
+                // 只保留json引用的图片，其余文件（旧图片、旧版本的splash.png、残留的临时文件）全部删除。
+                // 正在下载的其他线程的临时文件被删后，它会在重命名时失败并放弃本次刷新。
+                File[] files = pluginDir.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        if (!file.equals(imageFile)) {
+                            file.delete();
                         }
                     }
+                }
+            }
+        } finally {
+            tmpFile.delete();
+        }
+    }
+
+    /**
+     * 走一个线程，用于处理耗时操作：先加载已保存的图片并显示splash，再下载新的图片
+     *
+     * @param context     Context
+     * @param jsonUrl     String
+     * @param densityName String
+     * @param autoHide    boolean
+     */
+    private void runThread(final Context context, final String jsonUrl, final String densityName, final boolean autoHide) {
+        new Thread(new Runnable() {
 
+            @Override
+            public void run() {
+                Drawable drawable = null;
+                try {
+                    drawable = loadSplashDrawable(context, densityName);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+                showPendingSplashScreen(drawable, autoHide);
+
+                try {
+                    refreshSplashAssets(context, jsonUrl, densityName);
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
@@ -266,6 +406,26 @@ public class SplashScreen extends CordovaPlugin {
         }).start();
     }
 
+    /**
+     * 图片加载完成（或失败）后在UI线程上显示等待中的splash，显示过程中不再更换图片
+     *
+     * @param drawable Drawable，可能为null
+     * @param autoHide boolean
+     */
+    private void showPendingSplashScreen(final Drawable drawable, final boolean autoHide) {
+        cordova.getActivity().runOnUiThread(new Runnable() {
+            public void run() {
+                // A splash already shown by JS keeps its image until it is removed
+                if (splashDialog == null || !splashDialog.isShowing()) {
+                    screenDrawable = drawable;
+                }
+                if (pendingShow) {
+                    showSplashScreen(autoHide);
+                }
+            }
+        });
+    }
+
 
     @Override
     protected void pluginInitialize() {
@@ -275,25 +435,15 @@ public class SplashScreen extends CordovaPlugin {
         // Make WebView invisible while loading URL
         getView().setVisibility(View.INVISIBLE);
         int drawableId = preferences.getInteger("SplashDrawableId", 0);
+        String jsonUrl = null;
+        String densityName = null;
         if (drawableId == 0) {
-            context = cordova.getActivity();
-            String jsonUrl = preferences.getString("SplashScreenContentUrl", null);
+            Context context = cordova.getActivity();
+            jsonUrl = preferences.getString("SplashScreenContentUrl", null);
             String splashResource = preferences.getString("SplashScreen", "screen");
 
             if (jsonUrl != null && splashResource != null) {
-                runThread(jsonUrl);
-
-                String absPath = context.getFilesDir().getAbsolutePath();
-                String splashPath = getPath(absPath, PLUGIN_FOLDER, SPLASH_NAME);
-
-                File splashFile = new File(splashPath);
-                if (splashFile.exists()) {
-                    screenDrawable = getDrawableFromPath(splashPath);
-                }
-
-                if (densityName == null) {
-                    densityName = getDensityName(context);
-                }
+                densityName = getDensityName(context);
 
                 String packageName = context.getClass().getPackage().getName();
                 drawableId = cordova.getActivity().getResources().getIdentifier(splashResource, "drawable", packageName);
@@ -308,23 +458,20 @@ public class SplashScreen extends CordovaPlugin {
         // Save initial orientation.
         orientation = cordova.getActivity().getResources().getConfiguration().orientation;
 
-        if (firstShow) {
-            boolean autoHide = preferences.getBoolean("AutoHideSplashScreen", true);
+        boolean showOnlyFirstTime = preferences.getBoolean("SplashShowOnlyFirstTime", true);
+        boolean show = showOnlyFirstTime ? firstShow.getAndSet(false) : firstShow.get();
+        boolean autoHide = preferences.getBoolean("AutoHideSplashScreen", true);
+        if (densityName != null) {
+            // The saved image is decoded off the UI thread; the splash is shown once it is ready.
+            pendingShow = show;
+            runThread(cordova.getActivity().getApplicationContext(), jsonUrl, densityName, autoHide);
+        } else if (show) {
             showSplashScreen(autoHide);
         }
-
-        if (preferences.getBoolean("SplashShowOnlyFirstTime", true)) {
-            firstShow = false;
-        }
     }
 
 
-    private Drawable getDrawableFromPath(String imgPath) {
-        Bitmap screenImg = BitmapFactory.decodeFile(imgPath);
-        return new BitmapDrawable(screenImg).getCurrent();
-    }
-
-    private String getDensityName(Context context) {
+    private static String getDensityName(Context context) {
         float density = context.getResources().getDisplayMetrics().density;
         if (density >= 4.0) {
             return "xxxhdpi";
@@ -378,7 +525,7 @@ public class SplashScreen extends CordovaPlugin {
         // hide the splash screen to avoid leaking a window
         this.removeSplashScreen(true);
         // If we set this to true onDestroy, we lose track when we go from page to page!
-        //firstShow = true;
+        //firstShow.set(true);
     }
 
     @Override
@@ -447,6 +594,7 @@ public class SplashScreen extends CordovaPlugin {
     private void removeSplashScreen(final boolean forceHideImmediately) {
         cordova.getActivity().runOnUiThread(new Runnable() {
             public void run() {
+                pendingShow = false;
                 if (splashDialog != null && splashDialog.isShowing()) {
                     final int fadeSplashScreenDuration = getFadeDuration();
                     // CB-10692 If the plugin is being paused/destroyed, skip the fading and hide it immediately
@@ -500,17 +648,19 @@ public class SplashScreen extends CordovaPlugin {
         final int effectiveSplashDuration = Math.max(0, splashscreenTime - fadeSplashScreenDuration);
 
         lastHideAfterDelay = hideAfterDelay;
+        pendingShow = false;
 
-        // If the splash dialog is showing don't try to show it again
-        if (splashDialog != null && splashDialog.isShowing()) {
-            return;
-        }
         if (drawableId == 0 || (splashscreenTime <= 0 && hideAfterDelay)) {
             return;
         }
 
         cordova.getActivity().runOnUiThread(new Runnable() {
             public void run() {
+                // If the splash dialog is showing don't try to show it again
+                if (splashDialog != null && splashDialog.isShowing()) {
+                    return;
+                }
+
                 // Get reference to display
                 Display display = cordova.getActivity().getWindowManager().getDefaultDisplay();
                 Context context = webView.getContext();
@@ -672,3 +822,24 @@ class JsonDownloader {
         return jsonContent.toString();
     }
 }
+
+/**
+ * Immutable snapshot of the committed splash assets: the image URL from the
+ * saved manifest and the file it was downloaded to.
+ */
+final class SplashAssets {
+    final String imageUrl;
+    final String imagePath;
+
+    SplashAssets(final String imageUrl, final String imagePath) {
+        this.imageUrl = imageUrl;
+        this.imagePath = imagePath;
+    }
+
+    /**
+     * Used by the refresh thread to decide whether the image must be downloaded again.
+     */
+    boolean isComplete() {
+        return new File(imagePath).isFile();
+    }
+}